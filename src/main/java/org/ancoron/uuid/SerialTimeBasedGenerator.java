@@ -27,6 +27,8 @@ import com.fasterxml.uuid.impl.TimeBasedGenerator;
  */
 public class SerialTimeBasedGenerator extends TimeBasedGenerator
 {
+    private static final long TIMESTAMP_MASK = 0x0FFFFFFFFFFFFFFFL;
+
     private final boolean shift;
     private final int shift_bits_r;
     private final int shift_bits_l;
@@ -75,4 +77,26 @@ public class SerialTimeBasedGenerator extends TimeBasedGenerator
 
         return new UUID(timestamp, _uuidL2);
     }
+
+    /**
+     * Extracts the original 60-bit timestamp from a UUID produced by this
+     * generator (or any other one using the same shift).
+     *
+     * @param uuid the UUID
+     * @return the UUID timestamp (100ns intervals since 1582-10-15)
+     */
+    public long timestamp(UUID uuid)
+    {
+        long msb = uuid.getMostSignificantBits();
+
+        // remove the UUID version...
+        long timestamp = (msb >>> 16 << 12) | (msb & 0xFFF);
+
+        // ...and revert the shift...
+        if (shift) {
+            timestamp = (timestamp << shift_bits_r) | (timestamp >>> shift_bits_l);
+        }
+
+        return timestamp & TIMESTAMP_MASK;
+    }
 }
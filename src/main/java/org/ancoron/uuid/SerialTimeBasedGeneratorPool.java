@@ -0,0 +1,513 @@
+/*
+ * Copyright 2019 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.uuid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import com.fasterxml.uuid.EthernetAddress;
+import com.fasterxml.uuid.NoArgGenerator;
+import com.fasterxml.uuid.UUIDTimer;
+import com.fasterxml.uuid.UUIDType;
+
+/**
+ * A pool of independent {@link SerialTimeBasedGenerator} instances, each one
+ * with its own node ID and {@link UUIDTimer}.
+ * <p>
+ * Every generator is used by at most one thread at any time. A thread either
+ * holds one exclusively via {@link #acquire()} until the returned
+ * {@link Lease} is closed, or just calls {@link #generate()}, which borrows a
+ * free generator for a single UUID. While all generators are in use, further
+ * callers of both methods block until one is released. Generators are never
+ * bound to a thread, so threads that come and go (e.g. replaced executor
+ * threads) do not leave any of them unused.
+ * <p>
+ * The generators themselves are not exposed, as using them directly would
+ * bypass both the exclusive access and the {@link #ordered() ordered view}.
+ * <p>
+ * A time-ordered view of the UUIDs produced by the pool can be obtained from
+ * {@link #ordered()}.
+ *
+ * @author ancoron
+ */
+public class SerialTimeBasedGeneratorPool extends NoArgGenerator
+{
+    // offset between the UUID epoch (1582-10-15) and the Unix epoch in 100ns intervals...
+    private static final long UUID_EPOCH_OFFSET = 0x01b21dd213814000L;
+
+    private final Slot[] slots;
+    private final Semaphore leases;
+
+    private volatile OrderedView view;
+
+    public SerialTimeBasedGeneratorPool(int size)
+    {
+        this(size, 0);
+    }
+
+    public SerialTimeBasedGeneratorPool(int size, int shift)
+    {
+        this(size, shift, new SecureRandom());
+    }
+
+    public SerialTimeBasedGeneratorPool(int size, int shift, Random rand)
+    {
+        this(randomNodes(size, rand), timers(size, rand), shift);
+    }
+
+    public SerialTimeBasedGeneratorPool(EthernetAddress[] nodes, UUIDTimer[] timers, int shift)
+    {
+        if (nodes.length == 0 || nodes.length != timers.length) {
+            throw new IllegalArgumentException("Invalid number of nodes and timers: "
+                    + nodes.length + " / " + timers.length + " (must be equal and non-zero)");
+        }
+
+        Set<EthernetAddress> uniqueNodes = new HashSet<>();
+        Set<UUIDTimer> uniqueTimers = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < nodes.length; i++) {
+            if (!uniqueNodes.add(nodes[i])) {
+                throw new IllegalArgumentException("Duplicate node: '" + nodes[i] + "' (must be unique)");
+            }
+            if (!uniqueTimers.add(timers[i])) {
+                throw new IllegalArgumentException("Duplicate timer at index " + i + " (must be unique)");
+            }
+        }
+
+        // a fresh timer will not produce anything older than now...
+        final long now = now();
+
+        slots = new Slot[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            slots[i] = new Slot(i, new SerialTimeBasedGenerator(nodes[i], timers[i], shift), now);
+        }
+
+        leases = new Semaphore(nodes.length);
+    }
+
+    private static EthernetAddress[] randomNodes(int size, Random rand)
+    {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid value for parameter size: '" + size + "' (must be positive)");
+        }
+
+        Set<EthernetAddress> unique = new HashSet<>();
+        while (unique.size() < size) {
+            unique.add(EthernetAddress.constructMulticastAddress(rand));
+        }
+        return unique.toArray(new EthernetAddress[size]);
+    }
+
+    private static UUIDTimer[] timers(int size, Random rand)
+    {
+        UUIDTimer[] timers = new UUIDTimer[size];
+        for (int i = 0; i < timers.length; i++) {
+            try {
+                timers[i] = new UUIDTimer(rand, null);
+            } catch (IOException x) {
+                // no synchronizer, so not expected to happen...
+                throw new UncheckedIOException(x);
+            }
+        }
+        return timers;
+    }
+
+    private static long now()
+    {
+        return System.currentTimeMillis() * 10000L + UUID_EPOCH_OFFSET;
+    }
+
+    @Override
+    public UUIDType getType()
+    {
+        return UUIDType.TIME_BASED;
+    }
+
+    @Override
+    public UUID generate()
+    {
+        leases.acquireUninterruptibly();
+        Slot slot = claim();
+        try {
+            return generate(slot);
+        } finally {
+            slot.release();
+            leases.release();
+        }
+    }
+
+    private UUID generate(Slot slot)
+    {
+        UUID uuid = slot.gen.generate();
+
+        OrderedView current = view;
+        if (current != null) {
+            current.publish(slot.index, uuid);
+        }
+
+        // ...after publishing, as the view relies on it as a lower bound...
+        slot.published(slot.gen.timestamp(uuid));
+
+        return uuid;
+    }
+
+    /**
+     * Claims a free generator, starting at a thread specific index to keep
+     * concurrent threads apart. Must only be called with a permit of
+     * {@link #leases} held, which guarantees that one is free.
+     */
+    private Slot claim()
+    {
+        final int size = slots.length;
+        final int start = (int) Math.floorMod(Thread.currentThread().getId(), (long) size);
+
+        while (true) {
+            for (int i = 0; i < size; i++) {
+                Slot slot = slots[(start + i) % size];
+                if (slot.claim()) {
+                    return slot;
+                }
+            }
+            // ...another permit holder is just about to release its slot...
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Leases one generator of this pool exclusively to the caller, waiting
+     * for one to be released if all of them are in use.
+     *
+     * @return the lease, which must be closed to give the generator back
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Lease acquire() throws InterruptedException
+    {
+        leases.acquire();
+        return new Lease(claim());
+    }
+
+    /**
+     * @return the number of generators in this pool
+     */
+    public int size()
+    {
+        return slots.length;
+    }
+
+    /**
+     * @param index the generator index (from 0 to {@link #size()} - 1)
+     * @return the node of the generator at the given index
+     */
+    public EthernetAddress getEthernetAddress(int index)
+    {
+        return slots[index].gen.getEthernetAddress();
+    }
+
+    /**
+     * @param uuid a UUID produced by this pool
+     * @return the UUID timestamp (100ns intervals since 1582-10-15)
+     * @see SerialTimeBasedGenerator#timestamp(UUID)
+     */
+    public long timestamp(UUID uuid)
+    {
+        return slots[0].gen.timestamp(uuid);
+    }
+
+    /**
+     * @return a comparator ordering UUIDs of this pool by their timestamp
+     */
+    public Comparator<UUID> comparator()
+    {
+        return Comparator.<UUID>comparingLong(this::timestamp)
+                .thenComparingLong(UUID::getLeastSignificantBits);
+    }
+
+    /**
+     * Opens a view on all UUIDs produced by this pool from now on (through
+     * {@link #generate()} as well as any {@link Lease}), which hands them out
+     * globally ordered by time.
+     * <p>
+     * Only one view can be open at a time. Produced UUIDs are buffered until
+     * consumed, so the view should be polled regularly and closed when not
+     * needed anymore.
+     *
+     * @return the new view
+     * @throws IllegalStateException if a view is open already
+     */
+    public synchronized OrderedView ordered()
+    {
+        if (view != null) {
+            throw new IllegalStateException("Ordered view already open");
+        }
+        view = new OrderedView();
+        return view;
+    }
+
+    private synchronized void close(OrderedView closed)
+    {
+        if (view == closed) {
+            view = null;
+        }
+    }
+
+    /**
+     * Exclusive access to a single generator of the pool.
+     */
+    public final class Lease extends NoArgGenerator implements AutoCloseable
+    {
+        private final Slot slot;
+        private boolean closed;
+
+        private Lease(Slot slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public UUIDType getType()
+        {
+            return UUIDType.TIME_BASED;
+        }
+
+        @Override
+        public UUID generate()
+        {
+            if (closed) {
+                throw new IllegalStateException("Lease already closed");
+            }
+            return SerialTimeBasedGeneratorPool.this.generate(slot);
+        }
+
+        /**
+         * @return the node of the leased generator
+         */
+        public EthernetAddress getEthernetAddress()
+        {
+            return slot.gen.getEthernetAddress();
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed) {
+                closed = true;
+                slot.release();
+                leases.release();
+            }
+        }
+    }
+
+    /**
+     * Merges the UUIDs produced by the generators of the pool into one time
+     * ordered sequence.
+     * <p>
+     * A UUID is handed out only once no generator can produce an older one
+     * anymore: a generator that is in use will not go below the last UUID it
+     * produced (or the creation time of the pool if it did not produce any
+     * yet), whereas an idle one will not go below the current time. Hence:
+     * <ul>
+     * <li>a generator that is leased but not used holds back the output of
+     * all others (which keep being buffered) until it is used or released
+     * again</li>
+     * <li>if the system clock is set back, an idle generator may produce
+     * UUIDs older than ones already handed out, as its timer only ensures
+     * that its own timestamps never go back in time</li>
+     * </ul>
+     * <p>
+     * A view is meant to be consumed by a single thread.
+     */
+    public final class OrderedView implements AutoCloseable
+    {
+        private final ConcurrentLinkedQueue<UUID>[] buffers;
+        private final PriorityQueue<UUID> pending = new PriorityQueue<>(comparator());
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        private OrderedView()
+        {
+            buffers = new ConcurrentLinkedQueue[slots.length];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        private void publish(int index, UUID uuid)
+        {
+            buffers[index].add(uuid);
+        }
+
+        /**
+         * Calculates the timestamp below which no generator will publish any
+         * further UUID.
+         */
+        private long watermark()
+        {
+            // must be read before checking whether a generator is in use...
+            long watermark = now();
+
+            for (Slot slot : slots) {
+                if (slot.busy()) {
+                    watermark = Math.min(watermark, slot.published());
+                }
+            }
+
+            return watermark;
+        }
+
+        private void fill()
+        {
+            if (closed) {
+                throw new IllegalStateException("Ordered view already closed");
+            }
+
+            for (ConcurrentLinkedQueue<UUID> buffer : buffers) {
+                UUID uuid;
+                while ((uuid = buffer.poll()) != null) {
+                    pending.add(uuid);
+                }
+            }
+        }
+
+        /**
+         * @return the next UUID in time order or {@code null} if none is
+         * ready yet
+         * @throws IllegalStateException if the view has been closed
+         */
+        public UUID poll()
+        {
+            long watermark = watermark();
+            fill();
+
+            UUID head = pending.peek();
+            if (head == null || timestamp(head) >= watermark) {
+                return null;
+            }
+            return pending.poll();
+        }
+
+        /**
+         * Moves all UUIDs that are ready into the given collection.
+         *
+         * @param target the collection to add the UUIDs to (in time order)
+         * @return the number of UUIDs added
+         * @throws IllegalStateException if the view has been closed
+         */
+        public int drainTo(Collection<? super UUID> target)
+        {
+            long watermark = watermark();
+            fill();
+
+            int count = 0;
+            while (!pending.isEmpty() && timestamp(pending.peek()) < watermark) {
+                target.add(pending.poll());
+                count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void close()
+        {
+            if (!closed) {
+                closed = true;
+                pending.clear();
+                SerialTimeBasedGeneratorPool.this.close(this);
+            }
+        }
+    }
+
+    /*
+     * The per-generator state is padded to a cache line on both sides, so
+     * threads using different generators do not contend on shared lines.
+     */
+
+    @SuppressWarnings("unused")
+    private static class SlotPadding
+    {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    private static class SlotState extends SlotPadding
+    {
+        private static final AtomicIntegerFieldUpdater<SlotState> BUSY
+                = AtomicIntegerFieldUpdater.newUpdater(SlotState.class, "busy");
+        private static final AtomicLongFieldUpdater<SlotState> PUBLISHED
+                = AtomicLongFieldUpdater.newUpdater(SlotState.class, "published");
+
+        final int index;
+        final SerialTimeBasedGenerator gen;
+
+        private volatile int busy;
+        private volatile long published;
+
+        SlotState(int index, SerialTimeBasedGenerator gen, long published)
+        {
+            this.index = index;
+            this.gen = gen;
+            this.published = published;
+        }
+
+        boolean claim()
+        {
+            return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+        }
+
+        void release()
+        {
+            busy = 0;
+        }
+
+        boolean busy()
+        {
+            return busy != 0;
+        }
+
+        long published()
+        {
+            return published;
+        }
+
+        void published(long timestamp)
+        {
+            // ordered by the release of the slot, no need for a full fence...
+            PUBLISHED.lazySet(this, timestamp);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static final class Slot extends SlotState
+    {
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        Slot(int index, SerialTimeBasedGenerator gen, long published)
+        {
+            super(index, gen, published);
+        }
+    }
+}
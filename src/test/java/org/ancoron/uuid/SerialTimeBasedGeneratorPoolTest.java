@@ -0,0 +1,454 @@
+/*
+ * Copyright 2019 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.uuid;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.fasterxml.uuid.EthernetAddress;
+import com.fasterxml.uuid.NoArgGenerator;
+import com.fasterxml.uuid.UUIDTimer;
+import com.fasterxml.uuid.ext.JavaUtilLogger;
+
+/**
+ *
+ * @author ancoron
+ */
+public class SerialTimeBasedGeneratorPoolTest
+{
+
+    private static final Logger LOG = Logger.getLogger(SerialTimeBasedGeneratorPoolTest.class.getName());
+
+    private static final SecureRandom RAND = new SecureRandom("A constant random seed".getBytes());
+
+    private static final int NODES = Integer.getInteger("nodes", Runtime.getRuntime().availableProcessors());
+    private static final int COUNT = Integer.getInteger("count", 1_000_000);
+    private static final boolean SCALING = Boolean.getBoolean("uuid.pool.scaling");
+    private static final int MAX_THREADS = 64;
+    private static final long TIMEOUT_MILLIS = 10_000L;
+
+    // offset between the UUID epoch (1582-10-15) and the Unix epoch in 100ns intervals...
+    private static final long UUID_EPOCH_OFFSET = 0x01b21dd213814000L;
+
+    @BeforeClass
+    public static void init()
+    {
+        JavaUtilLogger.setLogLevel(JavaUtilLogger.LOG_ERROR_AND_ABOVE);
+    }
+
+    private static long millis(SerialTimeBasedGeneratorPool pool, UUID uuid)
+    {
+        return (pool.timestamp(uuid) - UUID_EPOCH_OFFSET) / 10_000L;
+    }
+
+    private static <T> List<T> runAll(int threads, Callable<T> task) throws Exception
+    {
+        List<Future<T>> futures = new ArrayList<>();
+        ExecutorService exe = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(exe.submit(task));
+        }
+
+        exe.shutdown();
+        assertTrue(exe.awaitTermination(1, TimeUnit.MINUTES));
+
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            // propagates assertion errors...
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /**
+     * Drains the view until the expected number of UUIDs has been collected
+     * or the timeout has been reached.
+     */
+    private static void drain(SerialTimeBasedGeneratorPool.OrderedView view, List<UUID> target, int expected)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (target.size() < expected && System.currentTimeMillis() < deadline) {
+            if (view.drainTo(target) == 0) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(expected, target.size());
+    }
+
+    private static void assertOrdered(Comparator<UUID> cmp, List<UUID> uuids)
+    {
+        for (int i = 1; i < uuids.size(); i++) {
+            assertTrue("Out of order at " + i + ": " + uuids.get(i - 1) + " > " + uuids.get(i),
+                    cmp.compare(uuids.get(i - 1), uuids.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void nodes() throws Exception
+    {
+        SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(MAX_THREADS, 0, RAND);
+
+        Set<EthernetAddress> nodes = new HashSet<>();
+        for (int i = 0; i < pool.size(); i++) {
+            nodes.add(pool.getEthernetAddress(i));
+        }
+
+        assertEquals(MAX_THREADS, nodes.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateNode() throws Exception
+    {
+        EthernetAddress node = EthernetAddress.constructMulticastAddress(RAND);
+        new SerialTimeBasedGeneratorPool(
+                new EthernetAddress[] {node, node},
+                new UUIDTimer[] {new UUIDTimer(RAND, null), new UUIDTimer(RAND, null)},
+                0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateTimer() throws Exception
+    {
+        UUIDTimer timer = new UUIDTimer(RAND, null);
+        new SerialTimeBasedGeneratorPool(
+                new EthernetAddress[] {
+                    EthernetAddress.constructMulticastAddress(RAND),
+                    EthernetAddress.constructMulticastAddress(RAND)
+                },
+                new UUIDTimer[] {timer, timer},
+                0);
+    }
+
+    @Test
+    public void leases() throws Exception
+    {
+        final SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(8, 0, RAND);
+
+        // every round runs on new threads, the previous ones are gone...
+        for (int round = 0; round < 3; round++) {
+            final CountDownLatch leased = new CountDownLatch(pool.size());
+
+            List<EthernetAddress> nodes = runAll(pool.size(), () -> {
+                try (SerialTimeBasedGeneratorPool.Lease lease = pool.acquire()) {
+                    try {
+                        long node = lease.getEthernetAddress().toLong();
+                        for (int j = 0; j < 1000; j++) {
+                            assertEquals(node, lease.generate().getLeastSignificantBits() & 0xFFFFFFFFFFFFL);
+                        }
+                    } finally {
+                        // hold the lease until every thread got one...
+                        leased.countDown();
+                    }
+                    assertTrue(leased.await(1, TimeUnit.MINUTES));
+                    return lease.getEthernetAddress();
+                }
+            });
+
+            assertEquals("Generators shared in round " + round,
+                    pool.size(), new HashSet<>(nodes).size());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void leaseClosed() throws Exception
+    {
+        SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(1, 0, RAND);
+
+        SerialTimeBasedGeneratorPool.Lease lease = pool.acquire();
+        lease.close();
+        lease.generate();
+    }
+
+    @Test
+    public void blocking() throws Exception
+    {
+        final SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(1, 0, RAND);
+        final AtomicReference<UUID> result = new AtomicReference<>();
+
+        Thread waiter;
+        try (SerialTimeBasedGeneratorPool.Lease lease = pool.acquire()) {
+            waiter = new Thread(() -> result.set(pool.generate()));
+            waiter.start();
+
+            // the waiting thread must block instead of spinning...
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (waiter.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(Thread.State.WAITING, waiter.getState());
+            assertNull(result.get());
+        }
+
+        waiter.join(TIMEOUT_MILLIS);
+        assertNotNull(result.get());
+    }
+
+    @Test
+    public void unique() throws Exception
+    {
+        final SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(4, 0, RAND);
+        final Set<UUID> uuids = Collections.synchronizedSet(new HashSet<>());
+        final int threads = 32;
+        final int perThread = 10_000;
+
+        runAll(threads, () -> {
+            for (int j = 0; j < perThread; j++) {
+                uuids.add(pool.generate());
+            }
+            return null;
+        });
+
+        assertEquals(threads * perThread, uuids.size());
+    }
+
+    @Test
+    public void timestamp() throws Exception
+    {
+        for (int shift = 0; shift < 8; shift++) {
+            SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(1, shift, RAND);
+
+            long before = System.currentTimeMillis();
+            UUID uuid = pool.generate();
+            long after = System.currentTimeMillis();
+
+            long millis = millis(pool, uuid);
+            assertEquals(1, uuid.version());
+            assertTrue("Unexpected timestamp for shift = " + shift + ": " + millis,
+                    millis >= before - 1000 && millis <= after + 1000);
+        }
+    }
+
+    @Test
+    public void ordered() throws Exception
+    {
+        final int threads = 8;
+        final int perThread = COUNT / 100;
+
+        for (int shift = 0; shift < 8; shift++) {
+            final SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(threads, shift, RAND);
+
+            try (SerialTimeBasedGeneratorPool.OrderedView view = pool.ordered()) {
+                final List<UUID> merged = new ArrayList<>();
+                final Set<UUID> produced = Collections.synchronizedSet(new HashSet<>());
+
+                ExecutorService exe = Executors.newFixedThreadPool(threads);
+                List<Future<?>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(exe.submit(() -> {
+                        try (SerialTimeBasedGeneratorPool.Lease lease = pool.acquire()) {
+                            for (int j = 0; j < perThread; j++) {
+                                produced.add(lease.generate());
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                exe.shutdown();
+
+                // drain while the leases are still producing...
+                int partial = 0;
+                while (!exe.isTerminated()) {
+                    if (view.drainTo(merged) > 0) {
+                        partial++;
+                    }
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+
+                drain(view, merged, threads * perThread);
+
+                LOG.log(Level.FINE, "shift = {0}: {1} partial drains", new Object[] {shift, partial});
+                assertEquals(produced, new HashSet<>(merged));
+                assertOrdered(pool.comparator(), merged);
+            }
+        }
+    }
+
+    @Test
+    public void orderedHeldBack() throws Exception
+    {
+        SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(2, 0, RAND);
+
+        SerialTimeBasedGeneratorPool.Lease idle = pool.acquire();
+        try (SerialTimeBasedGeneratorPool.OrderedView view = pool.ordered()) {
+            List<UUID> merged = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                pool.generate();
+            }
+
+            // the idle lease might still produce older UUIDs...
+            assertEquals(0, view.drainTo(merged));
+            assertNull(view.poll());
+
+            idle.close();
+            drain(view, merged, 100);
+            assertOrdered(pool.comparator(), merged);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void orderedClosed() throws Exception
+    {
+        SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(1, 0, RAND);
+
+        SerialTimeBasedGeneratorPool.OrderedView view = pool.ordered();
+        pool.generate();
+        view.close();
+        view.poll();
+    }
+
+    @Test
+    public void orderedIdle() throws Exception
+    {
+        SerialTimeBasedGeneratorPool pool = new SerialTimeBasedGeneratorPool(4, 0, RAND);
+
+        try (SerialTimeBasedGeneratorPool.OrderedView view = pool.ordered()) {
+            List<UUID> uuids = new ArrayList<>();
+            pool.generate();
+            drain(view, uuids, 1);
+
+            // nothing produced since, so nothing to hand out...
+            assertNull(view.poll());
+
+            uuids.clear();
+            long before = System.currentTimeMillis();
+            for (int i = 0; i < 100; i++) {
+                pool.generate();
+            }
+            long after = System.currentTimeMillis();
+            drain(view, uuids, 100);
+
+            for (UUID uuid : uuids) {
+                long millis = millis(pool, uuid);
+                assertTrue("Stale timestamp: " + millis + " (expected " + before + " - " + after + ")",
+                        millis >= before && millis <= after);
+            }
+        }
+    }
+
+    @Test
+    public void scaling() throws Exception
+    {
+        assumeTrue("Pool scaling test disabled (enable with -Duuid.pool.scaling=true)", SCALING);
+
+        LOG.log(Level.INFO, "Generating {0} UUIDs per run ({1} generators for pool.generate())",
+                new Object[] {COUNT, NODES});
+
+        for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+            final NoArgGenerator shared = new SerialTimeBasedGenerator(
+                    EthernetAddress.constructMulticastAddress(RAND), new UUIDTimer(RAND, null));
+            final SerialTimeBasedGeneratorPool leased = new SerialTimeBasedGeneratorPool(threads, 0, RAND);
+            final SerialTimeBasedGeneratorPool pooled = new SerialTimeBasedGeneratorPool(NODES, 0, RAND);
+            final SerialTimeBasedGeneratorPool viewed = new SerialTimeBasedGeneratorPool(NODES, 0, RAND);
+
+            long sharedRate = run(threads, () -> shared);
+            long leasedRate = run(threads, leased::acquire);
+            long pooledRate = run(threads, () -> pooled);
+
+            long viewedRate;
+            try (SerialTimeBasedGeneratorPool.OrderedView view = viewed.ordered()) {
+                Thread consumer = new Thread(() -> {
+                    List<UUID> sink = new ArrayList<>();
+                    while (!Thread.currentThread().isInterrupted()) {
+                        view.drainTo(sink);
+                        sink.clear();
+                    }
+                });
+                consumer.start();
+                try {
+                    viewedRate = run(threads, () -> viewed);
+                } finally {
+                    consumer.interrupt();
+                    consumer.join();
+                }
+            }
+
+            LOG.log(Level.INFO, "threads = {0}: shared = {1,number,#}, leased = {2,number,#},"
+                    + " generate = {3,number,#}, generate + view = {4,number,#} UUIDs/s",
+                    new Object[] {threads, sharedRate, leasedRate, pooledRate, viewedRate});
+        }
+    }
+
+    /**
+     * @return the number of UUIDs generated per second
+     */
+    private static long run(int threads, Callable<NoArgGenerator> source) throws Exception
+    {
+        final int perThread = COUNT / threads;
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final List<Future<UUID>> results = new ArrayList<>();
+
+        ExecutorService exe = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            results.add(exe.submit(() -> {
+                NoArgGenerator gen = source.call();
+                try {
+                    UUID uuid = gen.generate();
+                    ready.countDown();
+                    go.await();
+                    for (int j = 0; j < perThread; j++) {
+                        uuid = gen.generate();
+                    }
+                    return uuid;
+                } finally {
+                    if (gen instanceof AutoCloseable) {
+                        ((AutoCloseable) gen).close();
+                    }
+                }
+            }));
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+
+        exe.shutdown();
+        assertTrue(exe.awaitTermination(5, TimeUnit.MINUTES));
+        long nanos = System.nanoTime() - start;
+
+        for (Future<UUID> result : results) {
+            assertEquals(1, result.get().version());
+        }
+        return (long) perThread * threads * 1_000_000_000L / Math.max(nanos, 1);
+    }
+}